@@ -23,8 +23,6 @@
 
 package hu.dpc.fr.integritycheck;
 
-import static ch.veehait.devicecheck.appattest.common.AppleAppAttestEnvironment.DEVELOPMENT;
-import static ch.veehait.devicecheck.appattest.common.AppleAppAttestEnvironment.PRODUCTION;
 import static java.util.stream.Collectors.toMap;
 import static org.forgerock.json.JsonValue.*;
 import static org.forgerock.openam.auth.node.api.Action.send;
@@ -34,9 +32,11 @@ import java.util.*;
 import javax.inject.Inject;
 import javax.security.auth.callback.Callback;
 
-import ch.veehait.devicecheck.appattest.common.AppleAppAttestEnvironment;
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
 import com.sun.identity.authentication.spi.MetadataCallback;
+import hu.dpc.fr.integritycheck.registry.AppAttestApp;
+import hu.dpc.fr.integritycheck.registry.IntegrityAppRegistry;
+import hu.dpc.fr.integritycheck.tracing.IntegrityTracing;
 import hu.dpc.fr.integritycheck.util.AppAttestEnvironment;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
@@ -49,10 +49,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.inject.assistedinject.Assisted;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 
-import ch.veehait.devicecheck.appattest.AppleAppAttest;
-import ch.veehait.devicecheck.appattest.common.App;
 import ch.veehait.devicecheck.appattest.attestation.ValidatedAttestation;
 import ch.veehait.devicecheck.appattest.attestation.AttestationValidator;
 
@@ -66,24 +66,27 @@ public class AppAttest extends AbstractDecisionNode {
     private final Logger logger = LoggerFactory.getLogger(AppAttest.class);
     private final Config config;
     private final Realm realm;
-    private final static String HU_DPC_FR_APPATTEST_CHALLENGE = "hu.dpc.fr.appattest-challenge";
+    private final IntegrityAppRegistry registry;
+    private final AppAttestApp configuredApp;
+    private final static String CHECK = "AppAttest";
+    final static String HU_DPC_FR_APPATTEST_CHALLENGE = "hu.dpc.fr.appattest-challenge";
 
     /**
      * Configuration for the node.
      */
     public interface Config {
         /**
-         * The iOS app's bundle id.
+         * The iOS app's bundle id. Required unless the app registry is used.
          */
-        @Attribute(order = 100, requiredValue = true)
+        @Attribute(order = 100)
         default String bundleId() {
             return "hu.dpc.sample";
         }
 
         /**
-         * The Apple developer Team id.
+         * The Apple developer Team id. Required unless the app registry is used.
          */
-        @Attribute(order = 200, requiredValue = true)
+        @Attribute(order = 200)
         default String teamId() {
             return "123456789A";
         }
@@ -95,6 +98,23 @@ public class AppAttest extends AbstractDecisionNode {
         default AppAttestEnvironment environment() {
             return AppAttestEnvironment.DEVELOPMENT;
         }
+
+        /**
+         * Use the challenge issued earlier by the Integrity Challenge node and only collect the attestation.
+         */
+        @Attribute(order = 400)
+        default boolean preIssuedChallenge() {
+            return false;
+        }
+
+        /**
+         * Look up the app in the integrity app registry by the bundle id sent by the client,
+         * instead of using the bundle id, team id and environment above, which are then ignored.
+         */
+        @Attribute(order = 500)
+        default boolean useAppRegistry() {
+            return false;
+        }
     }
 
 
@@ -104,18 +124,34 @@ public class AppAttest extends AbstractDecisionNode {
      *
      * @param config The service config.
      * @param realm  The realm the node is in.
+     * @param registry The app registry and validator cache shared by all nodes.
      * @throws NodeProcessException If the configuration was not valid.
      */
     @Inject
-    public AppAttest(@Assisted Config config, @Assisted Realm realm) throws NodeProcessException {
+    public AppAttest(@Assisted Config config, @Assisted Realm realm, IntegrityAppRegistry registry)
+            throws NodeProcessException {
         this.config = config;
         this.realm = realm;
+        this.registry = registry;
+        if (config.useAppRegistry()) {
+            this.configuredApp = null;
+        } else if (Strings.isNullOrEmpty(config.bundleId()) || Strings.isNullOrEmpty(config.teamId())) {
+            throw new NodeProcessException("APPATTEST: Bundle ID and Team ID are required unless the app registry is used");
+        } else {
+            // the environment setting of the node has always been validated against production; only registry
+            // entries honour their environment
+            this.configuredApp = new AppAttestApp(config.teamId(), config.bundleId(), AppAttestEnvironment.PRODUCTION);
+        }
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
         if (!context.hasCallbacks()) {
             //first invocation, let's generate callbacks
+            if (config.preIssuedChallenge() && context.getStateFor(this).isDefined(HU_DPC_FR_APPATTEST_CHALLENGE)) {
+                logger.info("APPATTEST: challenge was pre-issued, collecting the attestation only");
+                return sendCallbacks(createHiddenValueForKeyId(), createHiddenValueForAttestation());
+            }
             logger.info("APPATTEST: sending callbacks");
             String challenge = UUID.randomUUID().toString();
             logger.info("APPATTEST: Challenge UUID: " + challenge);
@@ -142,9 +178,17 @@ public class AppAttest extends AbstractDecisionNode {
             String attestation = hiddenValueCallbackMap.get("attestation").getValue().toString();
             logger.info("APPATTEST: hiddenvaluecallback attestation: " + keyId);
 
+            Optional<AppAttestApp> app = resolveApp(hiddenValueCallbackMap.get("bundleId"));
+            if (!app.isPresent()) {
+                logger.error("APPATTEST: unknown bundle id");
+                context.getStateFor(this).remove(HU_DPC_FR_APPATTEST_CHALLENGE);
+                return gotoNext(false);
+            }
+
             if (keyId != null && attestation != null) {
 
-                Action gotoAction = gotoNext(validateAttestation(config.teamId(), config.bundleId(), keyId, challenge, attestation));
+                Action gotoAction = gotoNext(validateAttestation(app.get(), keyId, challenge, attestation,
+                        context.request.headers));
                 context.getStateFor(this).remove(HU_DPC_FR_APPATTEST_CHALLENGE);
                 return gotoAction;
 
@@ -156,39 +200,51 @@ public class AppAttest extends AbstractDecisionNode {
         }
     }
 
-    private boolean validateAttestation(String teamId, String bundleId, String keyId, String challenge, String attestation) {
-
-        logger.info("APPATTEST: validateAttestation(" + teamId + ", " + bundleId + ", " + keyId + ", " + challenge + ", " + attestation + ")");
-
-        // Create an instance of AppleAppAttest specific to a given iOS app, development team and
-        // Apple Appattest environment
-        logger.info("APPATTEST: env: " + config.environment());
+    private Optional<AppAttestApp> resolveApp(HiddenValueCallback bundleIdCallback) {
+        if (!config.useAppRegistry()) {
+            return Optional.of(configuredApp);
+        }
+        String bundleId = bundleIdCallback == null ? null : bundleIdCallback.getValue();
+        logger.info("APPATTEST: hiddenvaluecallback bundleId: " + bundleId);
+        return bundleId == null ? Optional.empty() : registry.findAppAttestApp(bundleId);
+    }
 
-        AppleAppAttestEnvironment env = config.environment().equals("DEVELOPMENT") ? DEVELOPMENT : PRODUCTION;
-        logger.info("APPATTEST: environment: " + env);
-        try {
-            App app = new App(teamId, bundleId);
-            logger.info("APPATTEST: created App: " + app);
+    private boolean validateAttestation(AppAttestApp app, String keyId, String challenge, String attestation,
+                                        ListMultimap<String, String> requestHeaders) {
 
-            AppleAppAttest appleAppAttest = new AppleAppAttest(app, env);
-            logger.info("APPATTEST: created AppleAppAttest" + appleAppAttest);
+        logger.info("APPATTEST: validateAttestation(" + app + ", " + keyId + ", " + challenge + ", " + attestation + ")");
 
-            // Create an AttestationValidator instance
-            AttestationValidator attestationValidator = appleAppAttest.createAttestationValidator();
-            logger.info("APPATTEST: created AttestationValidator: " + attestationValidator);
+        try (IntegrityTracing.Stage validation = IntegrityTracing.start(CHECK, "validateAttestation", app.getBundleId(), requestHeaders)) {
+            // The AttestationValidator is specific to a given iOS app, development team and
+            // Apple Appattest environment, and shared by all nodes with the same settings
+            AttestationValidator attestationValidator;
+            try (IntegrityTracing.Stage stage = IntegrityTracing.start(CHECK, "validator", app.getBundleId())) {
+                attestationValidator = registry.attestationValidator(app);
+                stage.success();
+            }
+            logger.info("APPATTEST: using AttestationValidator: " + attestationValidator);
 
             // Validate a single attestation object. Throws an AttestationException if a validation
             // error occurs.
             UUID uuid = UUID.fromString(challenge);
             logger.info("APPATTEST: UUID from string: " + uuid.toString());
 
-            // try {
-            byte[] decodedAttestation = Base64.getDecoder().decode(attestation);
+            byte[] decodedAttestation;
+            try (IntegrityTracing.Stage stage = IntegrityTracing.start(CHECK, "decode", app.getBundleId())) {
+                decodedAttestation = Base64.getDecoder().decode(attestation);
+                stage.success();
+            }
             logger.info("APPATTEST: decoded attestation: " + Arrays.toString(decodedAttestation));
 
-            ValidatedAttestation result = attestationValidator.validate(decodedAttestation, keyId, challenge.getBytes());
+            // certificate chain, nonce, key id and app id checks
+            ValidatedAttestation result;
+            try (IntegrityTracing.Stage stage = IntegrityTracing.start(CHECK, "validate", app.getBundleId())) {
+                result = attestationValidator.validate(decodedAttestation, keyId, challenge.getBytes());
+                stage.success();
+            }
             logger.info("APPATTEST: validation result" + result);
 
+            validation.success();
             return true;
         } catch (Exception /*AttestationException*/ x) {
             logger.error("APPATTEST: validation exception: " + x.getMessage(), x);
@@ -216,9 +272,18 @@ public class AppAttest extends AbstractDecisionNode {
         return new HiddenValueCallback("keyId", "false");
     }
 
+    private HiddenValueCallback createHiddenValueForBundleId() {
+        return new HiddenValueCallback("bundleId", "false");
+    }
+
     private Action sendCallbacks(Callback... callbacks) {
         logger.info("APPATTEST: sending callbacks: " + callbacks);
-        return send(ImmutableList.copyOf(callbacks)).build();
+        ImmutableList.Builder<Callback> builder = ImmutableList.<Callback>builder().add(callbacks);
+        if (config.useAppRegistry()) {
+            // the client tells which app it is, so the node can look it up in the registry
+            builder.add(createHiddenValueForBundleId());
+        }
+        return send(builder.build()).build();
     }
 
     private Action gotoNext(boolean outcome) {
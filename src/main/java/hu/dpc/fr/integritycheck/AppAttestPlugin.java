@@ -21,6 +21,7 @@ import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.plugins.PluginException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -57,7 +58,7 @@ import java.util.Map;
  */
 public class AppAttestPlugin extends AbstractNodeAmPlugin {
 
-	static private String currentVersion = "1.1.0";
+	static private String currentVersion = "1.3.0";
 	
     /** 
      * Specify the Map of list of node classes that the plugin is providing. These will then be installed and
@@ -68,7 +69,7 @@ public class AppAttestPlugin extends AbstractNodeAmPlugin {
 	@Override
 	protected Map<String, Iterable<? extends Class<? extends Node>>> getNodesByVersion() {
 		return Collections.singletonMap(AppAttestPlugin.currentVersion,
-				Collections.singletonList(AppAttest.class));
+				Arrays.asList(AppAttest.class, IntegrityChallenge.class));
 	}
 
     /** 
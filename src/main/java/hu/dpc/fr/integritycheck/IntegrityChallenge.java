@@ -0,0 +1,115 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+
+package hu.dpc.fr.integritycheck;
+
+import static hu.dpc.fr.integritycheck.AppAttest.HU_DPC_FR_APPATTEST_CHALLENGE;
+import static hu.dpc.fr.integritycheck.PlayIntegrity.HU_DPC_FR_INTEGRITY_NONCE;
+import static org.forgerock.json.JsonValue.*;
+import static org.forgerock.openam.auth.node.api.Action.send;
+
+import java.util.UUID;
+
+import javax.inject.Inject;
+
+import com.google.inject.assistedinject.Assisted;
+import com.sun.identity.authentication.spi.MetadataCallback;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.NodeState;
+import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node that issues the App Attest challenge and the Play Integrity nonce ahead of the {@link AppAttest} and
+ * {@link PlayIntegrity} nodes. Placed in a Page node next to earlier collectors (e.g. the username), the client
+ * receives the challenge with that page and can generate the attestation or token while the user is busy with the
+ * next steps. The values are kept in the shared state of the authentication session, the integrity nodes pick them
+ * up when their Pre-issued Challenge option is enabled.
+ */
+@Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
+        configClass = IntegrityChallenge.Config.class)
+public class IntegrityChallenge extends SingleOutcomeNode {
+
+    private final Logger logger = LoggerFactory.getLogger(IntegrityChallenge.class);
+    private final Config config;
+
+    /**
+     * Configuration for the node.
+     */
+    public interface Config {
+        /**
+         * Issue a challenge for the App Attest node.
+         */
+        @Attribute(order = 100)
+        default boolean appAttestChallenge() {
+            return true;
+        }
+
+        /**
+         * Issue a nonce for the Play Integrity node.
+         */
+        @Attribute(order = 200)
+        default boolean playIntegrityNonce() {
+            return true;
+        }
+    }
+
+
+    /**
+     * Create the node using Guice injection.
+     *
+     * @param config The service config.
+     * @throws NodeProcessException If the configuration was not valid.
+     */
+    @Inject
+    public IntegrityChallenge(@Assisted Config config) throws NodeProcessException {
+        this.config = config;
+    }
+
+    @Override
+    public Action process(TreeContext context) throws NodeProcessException {
+        if (context.hasCallbacks()) {
+            //the client has the challenge, nothing to collect
+            return goToNext().build();
+        }
+
+        NodeState state = context.getStateFor(this);
+        JsonValue metadata = json(object(
+                field("_action", "integritychallenge"),
+                field("_type", "IntegrityChallenge")
+        ));
+        if (config.appAttestChallenge()) {
+            String challenge = UUID.randomUUID().toString();
+            state.putShared(HU_DPC_FR_APPATTEST_CHALLENGE, challenge);
+            metadata.put("challenge", challenge);
+        }
+        if (config.playIntegrityNonce()) {
+            String nonce = UUID.randomUUID().toString();
+            state.putShared(HU_DPC_FR_INTEGRITY_NONCE, nonce);
+            metadata.put("nonce", nonce);
+        }
+        logger.info("INTEGRITYCHALLENGE: pre-issued: " + metadata);
+        return send(new MetadataCallback(metadata)).build();
+    }
+
+}
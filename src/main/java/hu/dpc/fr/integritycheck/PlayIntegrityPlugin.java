@@ -16,11 +16,16 @@
 
 package hu.dpc.fr.integritycheck;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import javax.inject.Inject;
+
+import hu.dpc.fr.integritycheck.deferred.DeferredVerificationService;
+import hu.dpc.fr.integritycheck.tracing.IntegrityTracing;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.plugins.PluginException;
@@ -57,7 +62,9 @@ import org.forgerock.openam.plugins.PluginException;
  */
 public class PlayIntegrityPlugin extends AbstractNodeAmPlugin {
 
-	static private String currentVersion = "1.1.0";
+	static private String currentVersion = "1.5.0";
+
+	private DeferredVerificationService deferredVerificationService;
 	
     /** 
      * Specify the Map of list of node classes that the plugin is providing. These will then be installed and
@@ -86,13 +93,43 @@ public class PlayIntegrityPlugin extends AbstractNodeAmPlugin {
      * Handle plugin startup. This method will be called every time AM starts, after {@link #onInstall()},
      * {@link #onAmUpgrade(String, String)} and {@link #upgrade(String)} have been called (if relevant).
      * 
-     * No need to implement this unless your AuthNode has specific requirements on startup.
+     * Starts the grace period of the deferred verifications left pending by the previous run.
      *
      * @param startupType The type of startup that is taking place.
      */
 	@Override
 	public void onStartup() throws PluginException {
 		super.onStartup();
+		if (deferredVerificationService != null) {
+			try {
+				deferredVerificationService.recover();
+			} catch (IOException e) {
+				throw new PluginException("Could not open the deferred verification store", e);
+			}
+		}
+	}
+
+    /** 
+     * Handle plugin shutdown. Stops the deferred verification workers, pending checks stay on disk and are
+     * resumed after the next startup. Flushes the span file, if tracing to a file is enabled.
+     */
+	@Override
+	public void onShutdown() {
+		if (deferredVerificationService != null) {
+			deferredVerificationService.shutdown();
+		}
+		IntegrityTracing.shutdown();
+		super.onShutdown();
+	}
+
+    /** 
+     * The deferred verification queue shared by the {@link PlayIntegrity} nodes.
+     *
+     * @param deferredVerificationService The deferred verification service.
+     */
+	@Inject
+	public void setDeferredVerificationService(DeferredVerificationService deferredVerificationService) {
+		this.deferredVerificationService = deferredVerificationService;
 	}
 
     /** 
@@ -0,0 +1,218 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+
+package hu.dpc.fr.integritycheck;
+
+import com.google.api.client.googleapis.services.GoogleClientRequestInitializer;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.playintegrity.v1.PlayIntegrityRequestInitializer;
+import com.google.api.services.playintegrity.v1.PlayIntegrityScopes;
+import com.google.api.services.playintegrity.v1.model.DecodeIntegrityTokenRequest;
+import com.google.api.services.playintegrity.v1.model.DecodeIntegrityTokenResponse;
+import com.google.auth.http.HttpCredentialsAdapter;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.common.hash.Hashing;
+import hu.dpc.fr.integritycheck.tracing.IntegrityTracing;
+import hu.dpc.fr.integritycheck.util.PlayCheckLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static hu.dpc.fr.integritycheck.util.PlayCheckLevel.NonceDeviceApp;
+import static hu.dpc.fr.integritycheck.util.PlayCheckLevel.NonceOnly;
+
+
+/**
+ * Decodes Play Integrity tokens with Google and checks the verdict for a single Android app.
+ * The Google client is created on first use and kept, so an instance can be reused across tree evaluations
+ * and from background threads.
+ */
+public class PlayIntegrityVerifier {
+
+    private static final String CHECK = "PlayIntegrity";
+    private final Logger logger = LoggerFactory.getLogger(PlayIntegrityVerifier.class);
+    private final String packageName;
+    private final String appName;
+    private final String googleCredentials;
+    private final PlayCheckLevel checkLevel;
+    private final String key;
+    private volatile GoogleCredentials credentials;
+    private volatile com.google.api.services.playintegrity.v1.PlayIntegrity play;
+
+    /**
+     * Create a verifier for an Android app.
+     *
+     * @param packageName       The Android app's package name.
+     * @param appName           The Android app's name.
+     * @param googleCredentials The Google Application Service Account Key (JSON string).
+     * @param checkLevel        Required check level.
+     */
+    public PlayIntegrityVerifier(String packageName, String appName, String googleCredentials, PlayCheckLevel checkLevel) {
+        this.packageName = packageName;
+        this.appName = appName;
+        this.googleCredentials = googleCredentials;
+        this.checkLevel = checkLevel;
+        this.key = Hashing.sha256().newHasher()
+                .putString(String.valueOf(packageName), StandardCharsets.UTF_8).putChar('\0')
+                .putString(String.valueOf(appName), StandardCharsets.UTF_8).putChar('\0')
+                .putString(String.valueOf(googleCredentials), StandardCharsets.UTF_8).putChar('\0')
+                .putString(String.valueOf(checkLevel), StandardCharsets.UTF_8)
+                .hash().toString();
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public PlayCheckLevel getCheckLevel() {
+        return checkLevel;
+    }
+
+    /**
+     * @return A hash of all the settings of the verifier, the same for verifiers that check tokens the same way.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Decode the token with Google and check the nonce and, depending on the check level, the verdicts.
+     *
+     * @param token The integrity token sent by the app.
+     * @param nonce The nonce the token has to be bound to.
+     * @return true if the token passed the required checks.
+     * @throws IOException If Google could not be reached or answered with an error.
+     * @throws InvalidCredentialsException If the service account key cannot be used.
+     */
+    public boolean verify(String token, String nonce) throws IOException {
+
+        logger.info("PLAYINTEGRITY: validate token for (config: [" + packageName + ", " + appName + ", "
+                + googleCredentials + ", " + checkLevel + "]; token: "
+                + token + ", nonce: " + nonce + ")");
+
+        DecodeIntegrityTokenRequest requestObj = new DecodeIntegrityTokenRequest();
+        requestObj.setIntegrityToken(token);
+
+        com.google.api.services.playintegrity.v1.PlayIntegrity client;
+        try (IntegrityTracing.Stage stage = IntegrityTracing.start(CHECK, "client", packageName)) {
+            client = getPlayIntegrity();
+            stage.success();
+        }
+
+        try (IntegrityTracing.Stage stage = IntegrityTracing.start(CHECK, "accessToken", packageName)) {
+            credentials.refreshIfExpired();
+            stage.success();
+        }
+
+        DecodeIntegrityTokenResponse response;
+        try (IntegrityTracing.Stage stage = IntegrityTracing.start(CHECK, "decodeIntegrityToken", packageName)) {
+            response = client.v1().decodeIntegrityToken(packageName, requestObj).execute();
+            stage.success();
+        }
+
+        logger.info("PLAYINTEGRITY: licensingVerdict: " + response.getTokenPayloadExternal().getAccountDetails().getAppLicensingVerdict());
+        logger.info("PLAYINTEGRITY: apprecognitionverdict: " + response.getTokenPayloadExternal().getAppIntegrity().getAppRecognitionVerdict());
+        logger.info("PLAYINTEGRITY: devicerecognitionverdict: " + response.getTokenPayloadExternal().getDeviceIntegrity().getDeviceRecognitionVerdict());
+        logger.info("PLAYINTEGRITY: nonce: " + response.getTokenPayloadExternal().getRequestDetails().getNonce());
+        logger.info("PLAYINTEGRITY: complete response: " + response);
+
+        try (IntegrityTracing.Stage stage = IntegrityTracing.start(CHECK, "verdict", packageName)) {
+            boolean verdict = checkVerdict(response, nonce);
+            stage.success(verdict);
+            return verdict;
+        }
+    }
+
+    private boolean checkVerdict(DecodeIntegrityTokenResponse response, String nonce) {
+        if (nonce.equals(response.getTokenPayloadExternal().getRequestDetails().getNonce())) {
+            if (checkLevel == NonceOnly) {
+                logger.info("PLAYINTEGRITY: NonceOnly: nonce OK");
+                return true;
+            } else {
+                if (checkLevel == NonceDeviceApp) {
+                    boolean verdict = "PLAY_RECOGNIZED".equals(response.getTokenPayloadExternal().getAppIntegrity().getAppRecognitionVerdict())
+                            && response.getTokenPayloadExternal().getDeviceIntegrity().getDeviceRecognitionVerdict().contains("MEETS_DEVICE_INTEGRITY");
+                    logger.info("PLAYINTEGRITY: NonceDeviceApp: verdict: " + verdict);
+                    return verdict;
+                }
+            }
+        } else {
+            logger.warn("PLAYINTEGRITY: nonce invalid");
+            return false;
+        }
+
+        logger.warn("PLAYINTEGRITY: we should not get here ever :-)");
+        return false;
+    }
+
+    private com.google.api.services.playintegrity.v1.PlayIntegrity getPlayIntegrity() throws IOException {
+        com.google.api.services.playintegrity.v1.PlayIntegrity result = play;
+        if (result == null) {
+            synchronized (this) {
+                result = play;
+                if (result == null) {
+                    GoogleCredentials scopedCredentials;
+                    try {
+                        scopedCredentials = GoogleCredentials.fromStream(new ByteArrayInputStream(googleCredentials.getBytes(StandardCharsets.UTF_8)))
+                                .createScoped(PlayIntegrityScopes.PLAYINTEGRITY);
+                    } catch (IOException | RuntimeException e) {
+                        throw new InvalidCredentialsException("invalid service account key for " + packageName
+                                + ": " + e.getMessage(), e);
+                    }
+                    logger.info("PLAYINTEGRITY: credentials json: " + scopedCredentials);
+
+                    HttpCredentialsAdapter credentialsAdapter = new HttpCredentialsAdapter(scopedCredentials);
+                    HttpRequestInitializer requestInitializer = request -> {
+                        credentialsAdapter.initialize(request);
+                        // continue the trace of the login in the call to Google
+                        IntegrityTracing.inject(request.getHeaders());
+                    };
+
+                    HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+                    JsonFactory JSON_FACTORY = new GsonFactory();
+                    GoogleClientRequestInitializer initialiser = new PlayIntegrityRequestInitializer();
+
+                    result = new com.google.api.services.playintegrity.v1.PlayIntegrity.Builder(HTTP_TRANSPORT, JSON_FACTORY, requestInitializer)
+                            .setApplicationName(appName)
+                            .setGoogleClientRequestInitializer(initialiser)
+                            .build();
+                    credentials = scopedCredentials;
+                    play = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Thrown when the service account key cannot be parsed. Unlike other {@link IOException}s, trying again does
+     * not help.
+     */
+    public static final class InvalidCredentialsException extends IOException {
+
+        InvalidCredentialsException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
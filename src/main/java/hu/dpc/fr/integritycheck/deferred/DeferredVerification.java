@@ -0,0 +1,154 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import hu.dpc.fr.integritycheck.util.PlayCheckLevel;
+
+import java.util.Properties;
+
+/**
+ * A Play Integrity token that was accepted at login and still has to be verified.
+ */
+public final class DeferredVerification {
+
+    private static final String ID = "id";
+    private static final String PACKAGE_NAME = "packageName";
+    private static final String APP_KEY = "appKey";
+    private static final String CHECK_LEVEL = "checkLevel";
+    private static final String TOKEN = "token";
+    private static final String NONCE = "nonce";
+    private static final String LOGIN_TIME = "loginTime";
+    private static final String SESSION_REFERENCE = "sessionReference";
+    private static final String ATTEMPTS = "attempts";
+
+    private final String id;
+    private final String packageName;
+    private final String appKey;
+    private final PlayCheckLevel checkLevel;
+    private final String token;
+    private final String nonce;
+    private final long loginTime;
+    private final String sessionReference;
+    private final int attempts;
+
+    DeferredVerification(String id, String packageName, String appKey, PlayCheckLevel checkLevel, String token,
+                         String nonce, long loginTime) {
+        this(id, packageName, appKey, checkLevel, token, nonce, loginTime, null, 0);
+    }
+
+    private DeferredVerification(String id, String packageName, String appKey, PlayCheckLevel checkLevel,
+                                 String token, String nonce, long loginTime, String sessionReference, int attempts) {
+        this.id = id;
+        this.packageName = packageName;
+        this.appKey = appKey;
+        this.checkLevel = checkLevel;
+        this.token = token;
+        this.nonce = nonce;
+        this.loginTime = loginTime;
+        this.sessionReference = sessionReference;
+        this.attempts = attempts;
+    }
+
+    DeferredVerification withSessionReference(String sessionReference) {
+        return new DeferredVerification(id, packageName, appKey, checkLevel, token, nonce, loginTime, sessionReference,
+                attempts);
+    }
+
+    DeferredVerification withAttempts(int attempts) {
+        return new DeferredVerification(id, packageName, appKey, checkLevel, token, nonce, loginTime, sessionReference,
+                attempts);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * @return The {@link hu.dpc.fr.integritycheck.PlayIntegrityVerifier#getKey() key} of the settings the token has
+     * to be verified with.
+     */
+    public String getAppKey() {
+        return appKey;
+    }
+
+    public PlayCheckLevel getCheckLevel() {
+        return checkLevel;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getNonce() {
+        return nonce;
+    }
+
+    /**
+     * @return The time the token was accepted, in milliseconds since the epoch.
+     */
+    public long getLoginTime() {
+        return loginTime;
+    }
+
+    /**
+     * @return The {@link SessionRevoker#reference(String) reference} to the session created at login, or null if the
+     * session hook has not run yet. It cannot be used to act as the session.
+     */
+    public String getSessionReference() {
+        return sessionReference;
+    }
+
+    /**
+     * @return The number of attempts that could not reach Google.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(ID, id);
+        properties.setProperty(PACKAGE_NAME, packageName);
+        properties.setProperty(APP_KEY, appKey);
+        properties.setProperty(CHECK_LEVEL, checkLevel.name());
+        properties.setProperty(TOKEN, token);
+        properties.setProperty(NONCE, nonce);
+        properties.setProperty(LOGIN_TIME, Long.toString(loginTime));
+        if (sessionReference != null) {
+            properties.setProperty(SESSION_REFERENCE, sessionReference);
+        }
+        properties.setProperty(ATTEMPTS, Integer.toString(attempts));
+        return properties;
+    }
+
+    static DeferredVerification fromProperties(Properties properties) {
+        return new DeferredVerification(properties.getProperty(ID), properties.getProperty(PACKAGE_NAME),
+                properties.getProperty(APP_KEY), PlayCheckLevel.valueOf(properties.getProperty(CHECK_LEVEL)),
+                properties.getProperty(TOKEN), properties.getProperty(NONCE),
+                Long.parseLong(properties.getProperty(LOGIN_TIME)), properties.getProperty(SESSION_REFERENCE),
+                Integer.parseInt(properties.getProperty(ATTEMPTS, "0")));
+    }
+
+    @Override
+    public String toString() {
+        return "DeferredVerification[" + id + ", " + packageName + ", " + checkLevel + ", loginTime: " + loginTime + ", attempts: " + attempts + "]";
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for deferred verifications. The lag is the time between accepting the token at login and
+ * finishing its verification.
+ */
+class DeferredVerificationMetrics {
+
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder totalLagMillis = new LongAdder();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+    private final AtomicLong lastLagMillis = new AtomicLong();
+
+    void recordVerified(boolean verdict, long lagMillis) {
+        if (verdict) {
+            passed.increment();
+        } else {
+            failed.increment();
+        }
+        totalLagMillis.add(lagMillis);
+        maxLagMillis.accumulateAndGet(lagMillis, Math::max);
+        lastLagMillis.set(lagMillis);
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    void recordExpired() {
+        expired.increment();
+    }
+
+    public long getPassed() {
+        return passed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return The number of attempts that could not reach Google.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return The number of tokens verified synchronously because the queue was full.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The number of recovered checks that failed because no node resumed them within the grace period.
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getAverageLagMillis() {
+        long count = getPassed() + getFailed();
+        return count == 0 ? 0 : totalLagMillis.sum() / count;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis.get();
+    }
+
+    public long getLastLagMillis() {
+        return lastLagMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "passed: " + getPassed() + ", failed: " + getFailed() + ", errors: " + getErrors()
+                + ", rejected: " + getRejected() + ", expired: " + getExpired() + ", lag avg/max/last: " + getAverageLagMillis() + "/"
+                + getMaxLagMillis() + "/" + getLastLagMillis() + " ms";
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import com.google.api.client.http.HttpResponseException;
+import hu.dpc.fr.integritycheck.PlayIntegrityVerifier;
+import hu.dpc.fr.integritycheck.tracing.IntegrityTracing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.stream.Collectors.groupingBy;
+
+/**
+ * Verifies Play Integrity tokens in the background after the user has already been let in.
+ * <p>
+ * Pending checks are written to disk before they are queued and removed once they pass, so a restart does not
+ * lose them. Each check records the {@link PlayIntegrityVerifier#getKey() key} of the settings it was accepted
+ * with, and checks recovered after a restart are resumed as soon as a verifier with the same settings registers.
+ * Recovered checks that no verifier resumes within {@value #RECOVERY_GRACE_PROPERTY} minutes (default 5) of startup,
+ * e.g. because the settings of their node changed or the node was removed, fail.
+ * The session created at login is bound to its check by the {@link DeferredVerificationTreeHook}; when the check
+ * fails, the session is destroyed. If the check fails before the session exists, the hook destroys it as soon as it
+ * is created. Failed checks are kept in the {@code failed} directory.
+ * </p>
+ * <p>
+ * When Google cannot be reached or answers with a server error or 429, the check is retried up to
+ * {@value #MAX_ATTEMPTS_PROPERTY} times (default 5), waiting {@value #RETRY_DELAY_PROPERTY} seconds (default 2) before
+ * the first retry and twice as long before each further one. A check that still could not be completed fails. Any
+ * other answer, e.g. Google rejecting a forged token, and an unusable service account key fail the check at once.
+ * </p>
+ * <p>
+ * The store is cleaned up at startup and every hour: failed checks older than {@value #RETENTION_PROPERTY} hours
+ * (default 24) are deleted.
+ * The counters of {@link DeferredVerificationMetrics} and the queue depth are logged after each check and cleanup.
+ * </p>
+ * <p>
+ * The store location, the worker count and the queue size can be set with the {@value #DIRECTORY_PROPERTY},
+ * {@value #WORKERS_PROPERTY} and {@value #QUEUE_SIZE_PROPERTY} system properties.
+ * </p>
+ */
+@Singleton
+public class DeferredVerificationService {
+
+    public static final String VERIFICATION_ID = "hu.dpc.fr.integrity-verification-id";
+    static final String DIRECTORY_PROPERTY = "hu.dpc.fr.integritycheck.deferred.dir";
+    static final String WORKERS_PROPERTY = "hu.dpc.fr.integritycheck.deferred.workers";
+    static final String QUEUE_SIZE_PROPERTY = "hu.dpc.fr.integritycheck.deferred.queueSize";
+    static final String MAX_ATTEMPTS_PROPERTY = "hu.dpc.fr.integritycheck.deferred.maxAttempts";
+    static final String RETRY_DELAY_PROPERTY = "hu.dpc.fr.integritycheck.deferred.retryDelay";
+    static final String RETENTION_PROPERTY = "hu.dpc.fr.integritycheck.deferred.retention";
+    static final String RECOVERY_GRACE_PROPERTY = "hu.dpc.fr.integritycheck.deferred.recoveryGrace";
+
+    private final Logger logger = LoggerFactory.getLogger(DeferredVerificationService.class);
+    private final SessionRevoker sessionRevoker;
+    private final Object lock = new Object();
+    private final Map<String, String> boundSessions = new ConcurrentHashMap<>();
+    private final DeferredVerificationMetrics metrics = new DeferredVerificationMetrics();
+    private final Map<String, List<DeferredVerification>> recovered = new ConcurrentHashMap<>();
+    private volatile DeferredVerificationStore store;
+    private volatile ThreadPoolExecutor executor;
+    private volatile ScheduledExecutorService scheduler;
+    private int maxAttempts;
+    private long retryDelayMillis;
+    private long retentionMillis;
+
+    /**
+     * @param sessionRevoker Destroys the session of a login whose verification failed.
+     */
+    @Inject
+    public DeferredVerificationService(SessionRevoker sessionRevoker) {
+        this.sessionRevoker = sessionRevoker;
+    }
+
+    /**
+     * Start the service if checks from before the restart are waiting on disk, so their grace period runs even if no
+     * node in deferred mode is used.
+     *
+     * @throws IOException If the store could not be opened.
+     */
+    public void recover() throws IOException {
+        if (Files.isDirectory(storeDirectory().resolve("pending"))) {
+            start();
+        }
+    }
+
+    /**
+     * Resume the checks recovered from disk that were accepted with the same settings as the verifier.
+     *
+     * @param verifier The verifier of a node running in deferred mode.
+     * @throws IOException If the store could not be opened.
+     */
+    public void register(PlayIntegrityVerifier verifier) throws IOException {
+        start();
+        List<DeferredVerification> resumed = recovered.remove(verifier.getKey());
+        if (resumed != null) {
+            logger.info("PLAYINTEGRITY: resuming " + resumed.size() + " deferred verifications for " + verifier.getPackageName());
+            for (DeferredVerification verification : resumed) {
+                try {
+                    executor.execute(() -> verify(verifier, verification));
+                } catch (RejectedExecutionException e) {
+                    logger.warn("PLAYINTEGRITY: queue full, retrying " + verification + " later");
+                    retry(verifier, verification);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persist and queue a token for background verification.
+     *
+     * @param verifier The verifier to use.
+     * @param token    The integrity token sent by the app.
+     * @param nonce    The nonce the token has to be bound to.
+     * @return The verification id, or empty if the queue is full and the token has to be verified synchronously.
+     * @throws IOException If the check could not be persisted.
+     */
+    public Optional<String> submit(PlayIntegrityVerifier verifier, String token, String nonce) throws IOException {
+        register(verifier);
+        DeferredVerification verification = new DeferredVerification(UUID.randomUUID().toString(),
+                verifier.getPackageName(), verifier.getKey(), verifier.getCheckLevel(), token, nonce,
+                System.currentTimeMillis());
+        store.savePending(verification);
+        try {
+            // the stages of the background verification continue the trace of the login
+            executor.execute(IntegrityTracing.wrap(() -> verify(verifier, verification)));
+        } catch (RejectedExecutionException e) {
+            store.removePending(verification.getId());
+            metrics.recordRejected();
+            return Optional.empty();
+        }
+        logger.info("PLAYINTEGRITY: queued " + verification + ", queue depth: " + executor.getQueue().size());
+        return Optional.of(verification.getId());
+    }
+
+    /**
+     * Bind the session created at login to its check, so it can be destroyed if the check fails.
+     *
+     * @param verificationId The value of the {@link #VERIFICATION_ID} session property.
+     * @param sessionId      The id of the session. Only a {@link SessionRevoker#reference(String) reference} to it is
+     *                       kept.
+     */
+    public void bindSession(String verificationId, String sessionId) {
+        if (store == null) {
+            return;
+        }
+        String sessionReference = sessionRevoker.reference(sessionId);
+        synchronized (lock) {
+            if (!store.isFailed(verificationId)) {
+                bindPending(verificationId, sessionReference);
+                return;
+            }
+        }
+        logger.warn("PLAYINTEGRITY: deferred verification " + verificationId + " already failed");
+        revoke(verificationId, sessionReference);
+    }
+
+    private void bindPending(String verificationId, String sessionReference) {
+        Optional<DeferredVerification> pending = store.findPending(verificationId);
+        if (pending.isPresent()) {
+            boundSessions.put(verificationId, sessionReference);
+            try {
+                store.savePending(pending.get().withSessionReference(sessionReference));
+            } catch (IOException e) {
+                logger.error("PLAYINTEGRITY: could not persist the session of deferred verification "
+                        + verificationId + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    DeferredVerificationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stop the workers. Checks that did not finish stay on disk and are resumed after the next startup.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            scheduler.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    private void verify(PlayIntegrityVerifier verifier, DeferredVerification verification) {
+        boolean verdict;
+        try {
+            verdict = verifier.verify(verification.getToken(), verification.getNonce());
+        } catch (IOException e) {
+            if (isTransient(e)) {
+                metrics.recordError();
+                logger.error("PLAYINTEGRITY: error talking to Google for " + verification + ": " + e.getMessage(), e);
+                retry(verifier, verification);
+                return;
+            }
+            logger.error("PLAYINTEGRITY: verification of " + verification + " cannot succeed: " + e.getMessage(), e);
+            verdict = false;
+        } catch (RuntimeException e) {
+            logger.error("PLAYINTEGRITY: unexpected response for " + verification + ": " + e.getMessage(), e);
+            verdict = false;
+        }
+
+        long lag = System.currentTimeMillis() - verification.getLoginTime();
+        metrics.recordVerified(verdict, lag);
+        if (verdict) {
+            synchronized (lock) {
+                store.removePending(verification.getId());
+                boundSessions.remove(verification.getId());
+            }
+            logger.info("PLAYINTEGRITY: deferred verification " + verification.getId() + " passed " + lag + " ms after login");
+        } else {
+            logger.warn("PLAYINTEGRITY: deferred verification " + verification.getId() + " failed " + lag + " ms after login");
+            fail(verification);
+        }
+        logMetrics();
+    }
+
+    /**
+     * @return Whether trying again may help: true for transport failures and for server error and 429 answers.
+     */
+    static boolean isTransient(IOException e) {
+        if (e instanceof PlayIntegrityVerifier.InvalidCredentialsException) {
+            return false;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpResponseException) {
+                int status = ((HttpResponseException) cause).getStatusCode();
+                return status >= 500 || status == 429;
+            }
+        }
+        return true;
+    }
+
+    private void retry(PlayIntegrityVerifier verifier, DeferredVerification verification) {
+        DeferredVerification next;
+        synchronized (lock) {
+            next = verification.withAttempts(verification.getAttempts() + 1);
+            String sessionReference = boundSessions.get(next.getId());
+            if (sessionReference != null) {
+                next = next.withSessionReference(sessionReference);
+            }
+            if (next.getAttempts() < maxAttempts) {
+                try {
+                    store.savePending(next);
+                } catch (IOException e) {
+                    logger.error("PLAYINTEGRITY: could not persist " + next + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        if (next.getAttempts() >= maxAttempts) {
+            logger.error("PLAYINTEGRITY: giving up deferred verification " + next.getId() + " after "
+                    + next.getAttempts() + " attempts");
+            fail(next);
+            return;
+        }
+
+        long delay = retryDelayMillis << (next.getAttempts() - 1);
+        DeferredVerification retried = next;
+        try {
+            scheduler.schedule(IntegrityTracing.wrap(() -> {
+                try {
+                    executor.execute(IntegrityTracing.wrap(() -> verify(verifier, retried)));
+                } catch (RejectedExecutionException e) {
+                    retry(verifier, retried);
+                }
+            }), delay, TimeUnit.MILLISECONDS);
+            logger.info("PLAYINTEGRITY: retrying deferred verification " + next.getId() + " in " + delay + " ms");
+        } catch (RejectedExecutionException e) {
+            logger.warn("PLAYINTEGRITY: shutting down, " + next + " is resumed after the next startup");
+        }
+    }
+
+    /**
+     * Fail the recovered checks that no verifier resumed within the grace period, destroying their sessions.
+     */
+    void expireRecovered() {
+        List<DeferredVerification> expired = new ArrayList<>();
+        for (String appKey : recovered.keySet()) {
+            List<DeferredVerification> verifications = recovered.remove(appKey);
+            if (verifications != null) {
+                expired.addAll(verifications);
+            }
+        }
+        for (DeferredVerification verification : expired) {
+            logger.warn("PLAYINTEGRITY: no node with the settings of " + verification
+                    + " resumed it within the grace period");
+            metrics.recordExpired();
+            fail(verification);
+        }
+        if (!expired.isEmpty()) {
+            logMetrics();
+        }
+    }
+
+    /**
+     * Delete failed checks older than the retention time.
+     */
+    void cleanup() {
+        int removed = store.removeFailedBefore(System.currentTimeMillis() - retentionMillis);
+        if (removed > 0) {
+            logger.info("PLAYINTEGRITY: deferred verification cleanup: " + removed + " failed checks deleted");
+        }
+        logMetrics();
+    }
+
+    private void logMetrics() {
+        logger.info("PLAYINTEGRITY: deferred verification metrics: " + metrics + ", queue depth: "
+                + executor.getQueue().size());
+    }
+
+    private void fail(DeferredVerification verification) {
+        String sessionReference;
+        synchronized (lock) {
+            sessionReference = boundSessions.remove(verification.getId());
+            if (sessionReference == null) {
+                sessionReference = verification.getSessionReference();
+            }
+            store.markFailed(verification);
+        }
+        if (sessionReference != null) {
+            revoke(verification.getId(), sessionReference);
+        } else {
+            logger.warn("PLAYINTEGRITY: no session yet for deferred verification " + verification.getId()
+                    + ", it will be destroyed when it is created");
+        }
+    }
+
+    private void revoke(String verificationId, String sessionReference) {
+        try {
+            sessionRevoker.revoke(sessionReference);
+            logger.warn("PLAYINTEGRITY: destroyed the session of failed deferred verification " + verificationId);
+        } catch (Exception e) {
+            logger.error("PLAYINTEGRITY: could not destroy the session of failed deferred verification "
+                    + verificationId + ": " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized void start() throws IOException {
+        if (executor != null) {
+            return;
+        }
+        Path directory = storeDirectory();
+        int workers = Integer.getInteger(WORKERS_PROPERTY, 4);
+        int queueSize = Integer.getInteger(QUEUE_SIZE_PROPERTY, 1000);
+        maxAttempts = Integer.getInteger(MAX_ATTEMPTS_PROPERTY, 5);
+        retryDelayMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger(RETRY_DELAY_PROPERTY, 2));
+        retentionMillis = TimeUnit.HOURS.toMillis(Integer.getInteger(RETENTION_PROPERTY, 24));
+        long recoveryGraceMillis = TimeUnit.MINUTES.toMillis(Integer.getInteger(RECOVERY_GRACE_PROPERTY, 5));
+
+        store = new DeferredVerificationStore(directory);
+        recovered.putAll(store.loadPending().stream().collect(groupingBy(DeferredVerification::getAppKey)));
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread thread = new Thread(r, "integrity-deferred-verification-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "integrity-deferred-verification-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(logFailures(this::cleanup, "cleanup"), 0, 1, TimeUnit.HOURS);
+        if (!recovered.isEmpty()) {
+            scheduler.schedule(logFailures(this::expireRecovered, "expiry of recovered checks"), recoveryGraceMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        logger.info("PLAYINTEGRITY: deferred verification started in " + directory + " with " + workers
+                + " workers and queue size " + queueSize + ", recovered: " + recovered.size() + " apps");
+    }
+
+    private Runnable logFailures(Runnable task, String name) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // the scheduler would cancel the later runs of the task without a trace
+                logger.error("PLAYINTEGRITY: deferred verification " + name + " failed: " + e.getMessage(), e);
+            }
+        };
+    }
+
+    private static Path storeDirectory() {
+        return Paths.get(System.getProperty(DIRECTORY_PROPERTY,
+                Paths.get(System.getProperty("user.home"), ".integritycheck", "deferred").toString()));
+    }
+}
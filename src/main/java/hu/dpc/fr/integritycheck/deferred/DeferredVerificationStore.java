@@ -0,0 +1,172 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Keeps one properties file per deferred verification on disk, so pending checks survive a restart.
+ * Pending checks live in the {@code pending} directory, failed ones are moved to {@code failed}.
+ * The files hold integrity tokens, so on POSIX file systems they are only readable by the owner. Failed checks are
+ * recorded without the reference to their session, which is no longer needed once the session has been destroyed.
+ */
+class DeferredVerificationStore {
+
+    private static final String SUFFIX = ".properties";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Logger logger = LoggerFactory.getLogger(DeferredVerificationStore.class);
+    private final Path pendingDir;
+    private final Path failedDir;
+    private final boolean posix;
+
+    DeferredVerificationStore(Path baseDir) throws IOException {
+        this.posix = baseDir.getFileSystem().supportedFileAttributeViews().contains("posix");
+        this.pendingDir = createDirectory(baseDir.resolve("pending"));
+        this.failedDir = createDirectory(baseDir.resolve("failed"));
+    }
+
+    void savePending(DeferredVerification verification) throws IOException {
+        save(pendingDir, verification);
+    }
+
+    Optional<DeferredVerification> findPending(String id) {
+        Path file = pendingDir.resolve(id + SUFFIX);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(read(file));
+        } catch (IOException | RuntimeException e) {
+            logger.error("PLAYINTEGRITY: could not read deferred verification " + file + ": " + e.getMessage(), e);
+            return Optional.empty();
+        }
+    }
+
+    void removePending(String id) {
+        try {
+            Files.deleteIfExists(pendingDir.resolve(id + SUFFIX));
+        } catch (IOException e) {
+            logger.error("PLAYINTEGRITY: could not remove deferred verification " + id + ": " + e.getMessage(), e);
+        }
+    }
+
+    void markFailed(DeferredVerification verification) {
+        try {
+            save(failedDir, verification.withSessionReference(null));
+        } catch (IOException e) {
+            logger.error("PLAYINTEGRITY: could not record failed deferred verification " + verification.getId() + ": "
+                    + e.getMessage(), e);
+        }
+        removePending(verification.getId());
+    }
+
+    boolean isFailed(String id) {
+        return Files.exists(failedDir.resolve(id + SUFFIX));
+    }
+
+    /**
+     * Delete the failed checks recorded before the cutoff, and temporary files left behind by a crash.
+     *
+     * @param cutoff Time in milliseconds since the epoch.
+     * @return The number of failed checks deleted.
+     */
+    int removeFailedBefore(long cutoff) {
+        deleteBefore(pendingDir, "*" + TEMP_SUFFIX, cutoff);
+        deleteBefore(failedDir, "*" + TEMP_SUFFIX, cutoff);
+        return deleteBefore(failedDir, "*" + SUFFIX, cutoff);
+    }
+
+    List<DeferredVerification> loadPending() {
+        List<DeferredVerification> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(pendingDir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    result.add(read(file));
+                } catch (IOException | RuntimeException e) {
+                    logger.error("PLAYINTEGRITY: skipping unreadable deferred verification " + file + ": " + e.getMessage(), e);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("PLAYINTEGRITY: could not list deferred verifications in " + pendingDir + ": " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    private void save(Path dir, DeferredVerification verification) throws IOException {
+        Path target = dir.resolve(verification.getId() + SUFFIX);
+        Path temp = dir.resolve(verification.getId() + TEMP_SUFFIX);
+        Files.deleteIfExists(temp);
+        Files.createFile(temp, ownerOnly("rw-------"));
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            verification.toProperties().store(out, null);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int deleteBefore(Path dir, String glob, long cutoff) {
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, glob)) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < cutoff && Files.deleteIfExists(file)) {
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("PLAYINTEGRITY: could not clean up deferred verifications in " + dir + ": " + e.getMessage(), e);
+        }
+        return deleted;
+    }
+
+    private Path createDirectory(Path dir) throws IOException {
+        Files.createDirectories(dir, ownerOnly("rwx------"));
+        if (posix) {
+            // tighten directories created by earlier versions too
+            Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+        }
+        return dir;
+    }
+
+    private FileAttribute<?>[] ownerOnly(String permissions) {
+        return posix
+                ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))}
+                : new FileAttribute<?>[0];
+    }
+
+    private DeferredVerification read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            Properties properties = new Properties();
+            properties.load(in);
+            return DeferredVerification.fromProperties(properties);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import javax.inject.Inject;
+
+import com.google.inject.assistedinject.Assisted;
+import hu.dpc.fr.integritycheck.PlayIntegrity;
+import org.forgerock.openam.auth.node.api.TreeHook;
+import org.forgerock.openam.auth.node.api.TreeHookException;
+import org.forgerock.openam.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs after the session of a login with deferred verification has been created, and binds the session to its
+ * pending check, so the session can be destroyed if the check fails.
+ */
+@TreeHook.Metadata(configClass = PlayIntegrity.Config.class)
+public class DeferredVerificationTreeHook implements TreeHook {
+
+    private final Logger logger = LoggerFactory.getLogger(DeferredVerificationTreeHook.class);
+    private final Session session;
+    private final DeferredVerificationService deferredVerificationService;
+
+    /**
+     * Create the hook using Guice injection.
+     *
+     * @param session                     The session created at login.
+     * @param deferredVerificationService The background verification queue shared by all nodes.
+     */
+    @Inject
+    public DeferredVerificationTreeHook(@Assisted Session session,
+                                        DeferredVerificationService deferredVerificationService) {
+        this.session = session;
+        this.deferredVerificationService = deferredVerificationService;
+    }
+
+    @Override
+    public void accept() throws TreeHookException {
+        try {
+            String verificationId = session.getProperty(DeferredVerificationService.VERIFICATION_ID);
+            if (verificationId != null) {
+                deferredVerificationService.bindSession(verificationId, session.getSessionID().toString());
+            }
+        } catch (Exception e) {
+            logger.error("PLAYINTEGRITY: could not bind the session to its deferred verification: " + e.getMessage(), e);
+            throw new TreeHookException(e);
+        }
+    }
+}
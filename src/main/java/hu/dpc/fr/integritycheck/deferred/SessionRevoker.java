@@ -0,0 +1,40 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Ends the session of a login whose deferred verification failed.
+ */
+@ImplementedBy(SsoSessionRevoker.class)
+public interface SessionRevoker {
+
+    /**
+     * The session id is a bearer credential, so only a reference to it is kept in memory and on disk.
+     *
+     * @param sessionId The id of the session created at login.
+     * @return A reference to the session that only {@link #revoke(String)} can use.
+     */
+    String reference(String sessionId);
+
+    /**
+     * @param sessionReference The reference returned by {@link #reference(String)}.
+     * @throws Exception If the session could not be destroyed.
+     */
+    void revoke(String sessionReference) throws Exception;
+}
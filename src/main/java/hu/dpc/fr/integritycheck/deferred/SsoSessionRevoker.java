@@ -0,0 +1,50 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import java.security.AccessController;
+
+import com.iplanet.sso.SSOException;
+import com.iplanet.sso.SSOToken;
+import com.iplanet.sso.SSOTokenManager;
+import com.sun.identity.security.AdminTokenAction;
+import com.sun.identity.security.DecodeAction;
+import com.sun.identity.security.EncodeAction;
+
+/**
+ * Destroys the session through AM's session service. Sessions stored in CTS are destroyed on every server of the
+ * cluster. Session ids are referenced in their encrypted form, so only an AM instance sharing the encryption key can
+ * use them.
+ */
+public class SsoSessionRevoker implements SessionRevoker {
+
+    @Override
+    public String reference(String sessionId) {
+        return AccessController.doPrivileged(new EncodeAction(sessionId));
+    }
+
+    @Override
+    public void revoke(String sessionReference) throws SSOException {
+        String sessionId = AccessController.doPrivileged(new DecodeAction(sessionReference));
+        if (sessionId == null) {
+            throw new SSOException("could not decrypt the session reference");
+        }
+        SSOTokenManager manager = SSOTokenManager.getInstance();
+        SSOToken adminToken = AccessController.doPrivileged(AdminTokenAction.getInstance());
+        manager.destroyToken(adminToken, manager.createSSOToken(sessionId));
+    }
+}
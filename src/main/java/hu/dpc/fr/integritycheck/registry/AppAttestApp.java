@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ *
+ * Includes App Attestation library by Vincent Haupert
+ * from https://github.com/veehaitch/devicecheck-appattest/tree/v0.9.4 (Apache License 2.0)
+ */
+
+package hu.dpc.fr.integritycheck.registry;
+
+import static ch.veehait.devicecheck.appattest.common.AppleAppAttestEnvironment.DEVELOPMENT;
+import static ch.veehait.devicecheck.appattest.common.AppleAppAttestEnvironment.PRODUCTION;
+
+import java.util.Objects;
+
+import ch.veehait.devicecheck.appattest.AppleAppAttest;
+import ch.veehait.devicecheck.appattest.attestation.AttestationValidator;
+import ch.veehait.devicecheck.appattest.common.App;
+import hu.dpc.fr.integritycheck.util.AppAttestEnvironment;
+
+/**
+ * The App Attest settings of an iOS app. Instances with the same settings share one {@link AttestationValidator}.
+ */
+public final class AppAttestApp {
+
+    private final String teamId;
+    private final String bundleId;
+    private final AppAttestEnvironment environment;
+
+    public AppAttestApp(String teamId, String bundleId, AppAttestEnvironment environment) {
+        this.teamId = teamId;
+        this.bundleId = bundleId;
+        this.environment = environment;
+    }
+
+    public String getTeamId() {
+        return teamId;
+    }
+
+    public String getBundleId() {
+        return bundleId;
+    }
+
+    public AppAttestEnvironment getEnvironment() {
+        return environment;
+    }
+
+    AttestationValidator createValidator() {
+        App app = new App(teamId, bundleId);
+        AppleAppAttest appleAppAttest = new AppleAppAttest(app,
+                environment == AppAttestEnvironment.DEVELOPMENT ? DEVELOPMENT : PRODUCTION);
+        return appleAppAttest.createAttestationValidator();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AppAttestApp)) {
+            return false;
+        }
+        AppAttestApp that = (AppAttestApp) o;
+        return teamId.equals(that.teamId) && bundleId.equals(that.bundleId) && environment == that.environment;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(teamId, bundleId, environment);
+    }
+
+    @Override
+    public String toString() {
+        return "AppAttestApp[" + teamId + ", " + bundleId + ", " + environment + "]";
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.registry;
+
+import static org.forgerock.json.JsonValue.json;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import ch.veehait.devicecheck.appattest.attestation.AttestationValidator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import hu.dpc.fr.integritycheck.PlayIntegrityVerifier;
+import hu.dpc.fr.integritycheck.util.AppAttestEnvironment;
+import hu.dpc.fr.integritycheck.util.PlayCheckLevel;
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the App Attest validators and Play Integrity verifiers shared by all nodes in all trees, and the app
+ * registry used by nodes running in registry mode.
+ * <p>
+ * The registry is a JSON file set by the {@value #FILE_PROPERTY} system property:
+ * </p>
+ * <pre>
+ * {
+ *   "appAttest": {
+ *     "hu.dpc.sample": { "teamId": "123456789A", "environment": "PRODUCTION" }
+ *   },
+ *   "playIntegrity": {
+ *     "hu.dpc.sample": { "appName": "hu.dpc.sample", "checkLevel": "NonceDeviceApp", "googleCredentials": { ... } }
+ *   }
+ * }
+ * </pre>
+ * <p>
+ * Apps are looked up by bundle id and package name. The file is checked for changes at most once every
+ * {@value #RELOAD_INTERVAL_PROPERTY} seconds (default 30) and reloaded without restarting AM. Validators of apps
+ * whose settings did not change are kept.
+ * </p>
+ * <p>
+ * Validators and verifiers are dropped when the registry entry they were created for changes, when they have not
+ * been used for an hour, e.g. because the node settings they were created for changed, and when there are more than
+ * {@value #CACHE_SIZE_PROPERTY} (default 1000) of either kind.
+ * </p>
+ */
+@Singleton
+public class IntegrityAppRegistry {
+
+    static final String FILE_PROPERTY = "hu.dpc.fr.integritycheck.registry.file";
+    static final String RELOAD_INTERVAL_PROPERTY = "hu.dpc.fr.integritycheck.registry.reloadInterval";
+    static final String CACHE_SIZE_PROPERTY = "hu.dpc.fr.integritycheck.registry.cacheSize";
+
+    private final Logger logger = LoggerFactory.getLogger(IntegrityAppRegistry.class);
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final LoadingCache<AppAttestApp, AttestationValidator> attestationValidators =
+            newCache(CacheLoader.from(AppAttestApp::createValidator));
+    private final LoadingCache<PlayIntegrityApp, PlayIntegrityVerifier> playIntegrityVerifiers =
+            newCache(CacheLoader.from(PlayIntegrityApp::createVerifier));
+    private final long reloadIntervalMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger(RELOAD_INTERVAL_PROPERTY, 30));
+    private volatile Apps apps = new Apps(Collections.emptyMap(), Collections.emptyMap(), -1);
+    private volatile long lastCheck;
+
+    /**
+     * @param app The App Attest settings.
+     * @return The validator shared by all nodes with the same settings.
+     */
+    public AttestationValidator attestationValidator(AppAttestApp app) {
+        return attestationValidators.getUnchecked(app);
+    }
+
+    /**
+     * @param app The Play Integrity settings.
+     * @return The verifier shared by all nodes with the same settings.
+     */
+    public PlayIntegrityVerifier playIntegrityVerifier(PlayIntegrityApp app) {
+        return playIntegrityVerifiers.getUnchecked(app);
+    }
+
+    /**
+     * @param bundleId The bundle id sent by the iOS app.
+     * @return The registered App Attest settings of the app.
+     */
+    public Optional<AppAttestApp> findAppAttestApp(String bundleId) {
+        return Optional.ofNullable(currentApps().appAttest.get(bundleId));
+    }
+
+    /**
+     * @param packageName The package name sent by the Android app.
+     * @return The registered Play Integrity settings of the app.
+     */
+    public Optional<PlayIntegrityApp> findPlayIntegrityApp(String packageName) {
+        return Optional.ofNullable(currentApps().playIntegrity.get(packageName));
+    }
+
+    private Apps currentApps() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck >= reloadIntervalMillis) {
+            reloadIfChanged(now);
+        }
+        return apps;
+    }
+
+    private synchronized void reloadIfChanged(long now) {
+        if (now - lastCheck < reloadIntervalMillis) {
+            return;
+        }
+        lastCheck = now;
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file == null) {
+            logger.error("INTEGRITYREGISTRY: a node uses the app registry, but the " + FILE_PROPERTY
+                    + " system property is not set; every app is unknown");
+            return;
+        }
+        Path path = Paths.get(file);
+        try {
+            long lastModified = Files.getLastModifiedTime(path).toMillis();
+            if (lastModified == apps.lastModified) {
+                return;
+            }
+            Apps loaded = load(path, lastModified);
+            Apps previous = apps;
+            apps = loaded;
+            evictChanged(previous.appAttest.values(), loaded.appAttest.values(), attestationValidators);
+            evictChanged(previous.playIntegrity.values(), loaded.playIntegrity.values(), playIntegrityVerifiers);
+            logger.info("INTEGRITYREGISTRY: loaded " + loaded.appAttest.size() + " App Attest and "
+                    + loaded.playIntegrity.size() + " Play Integrity apps from " + path);
+        } catch (IOException | RuntimeException e) {
+            logger.error("INTEGRITYREGISTRY: could not load " + path + ", keeping the previous registry: " + e.getMessage(), e);
+        }
+    }
+
+    private Apps load(Path path, long lastModified) throws IOException {
+        JsonValue registry = json(mapper.readValue(path.toFile(), Object.class));
+
+        Map<String, AppAttestApp> appAttest = new HashMap<>();
+        JsonValue appAttestApps = registry.get("appAttest");
+        for (String bundleId : appAttestApps.keys()) {
+            JsonValue app = appAttestApps.get(bundleId);
+            appAttest.put(bundleId, new AppAttestApp(app.get("teamId").required().asString(), bundleId,
+                    app.get("environment").defaultTo(AppAttestEnvironment.PRODUCTION.name()).asEnum(AppAttestEnvironment.class)));
+        }
+
+        Map<String, PlayIntegrityApp> playIntegrity = new HashMap<>();
+        JsonValue playIntegrityApps = registry.get("playIntegrity");
+        for (String packageName : playIntegrityApps.keys()) {
+            JsonValue app = playIntegrityApps.get(packageName);
+            JsonValue credentials = app.get("googleCredentials").required();
+            playIntegrity.put(packageName, new PlayIntegrityApp(packageName,
+                    app.get("appName").defaultTo(packageName).asString(),
+                    credentials.isString() ? credentials.asString() : mapper.writeValueAsString(credentials.getObject()),
+                    app.get("checkLevel").defaultTo(PlayCheckLevel.NonceOnly.name()).asEnum(PlayCheckLevel.class)));
+        }
+
+        return new Apps(appAttest, playIntegrity, lastModified);
+    }
+
+    private static <K, V> LoadingCache<K, V> newCache(CacheLoader<K, V> loader) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(Integer.getInteger(CACHE_SIZE_PROPERTY, 1000))
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(loader);
+    }
+
+    private static <K> void evictChanged(Collection<K> previous, Collection<K> loaded, Cache<K, ?> cache) {
+        Set<K> kept = new HashSet<>(loaded);
+        for (K app : previous) {
+            if (!kept.contains(app)) {
+                cache.invalidate(app);
+            }
+        }
+    }
+
+    private static final class Apps {
+        private final Map<String, AppAttestApp> appAttest;
+        private final Map<String, PlayIntegrityApp> playIntegrity;
+        private final long lastModified;
+
+        private Apps(Map<String, AppAttestApp> appAttest, Map<String, PlayIntegrityApp> playIntegrity, long lastModified) {
+            this.appAttest = appAttest;
+            this.playIntegrity = playIntegrity;
+            this.lastModified = lastModified;
+        }
+    }
+}
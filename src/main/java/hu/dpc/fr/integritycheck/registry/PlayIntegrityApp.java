@@ -0,0 +1,72 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.registry;
+
+import hu.dpc.fr.integritycheck.PlayIntegrityVerifier;
+import hu.dpc.fr.integritycheck.util.PlayCheckLevel;
+
+import java.util.Objects;
+
+/**
+ * The Play Integrity settings of an Android app. Instances with the same settings share one
+ * {@link PlayIntegrityVerifier}, and with it the credentials and the HTTP client.
+ */
+public final class PlayIntegrityApp {
+
+    private final String packageName;
+    private final String appName;
+    private final String googleCredentials;
+    private final PlayCheckLevel checkLevel;
+
+    public PlayIntegrityApp(String packageName, String appName, String googleCredentials, PlayCheckLevel checkLevel) {
+        this.packageName = packageName;
+        this.appName = appName;
+        this.googleCredentials = googleCredentials;
+        this.checkLevel = checkLevel;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    PlayIntegrityVerifier createVerifier() {
+        return new PlayIntegrityVerifier(packageName, appName, googleCredentials, checkLevel);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PlayIntegrityApp)) {
+            return false;
+        }
+        PlayIntegrityApp that = (PlayIntegrityApp) o;
+        return packageName.equals(that.packageName) && appName.equals(that.appName)
+                && googleCredentials.equals(that.googleCredentials) && checkLevel == that.checkLevel;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(packageName, appName, googleCredentials, checkLevel);
+    }
+
+    @Override
+    public String toString() {
+        return "PlayIntegrityApp[" + packageName + ", " + appName + ", " + checkLevel + "]";
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event covering one stage of an integrity check, e.g. the certificate validation of an
+ * attestation or the call to Google.
+ */
+@Name("hu.dpc.fr.integritycheck.Stage")
+@Label("Integrity Check Stage")
+@Category({"DPC", "Integrity Check"})
+@Description("A stage of an App Attest or Play Integrity verification")
+class IntegrityCheckEvent extends Event {
+
+    @Label("Check")
+    String check;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("App")
+    String app;
+
+    @Label("Success")
+    boolean success;
+}
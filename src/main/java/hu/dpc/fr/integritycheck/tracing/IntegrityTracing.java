@@ -0,0 +1,225 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.tracing;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.common.collect.ListMultimap;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapSetter;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+
+/**
+ * Records the stages of the integrity checks as JDK Flight Recorder events and OpenTelemetry spans.
+ * <p>
+ * JFR events are always emitted and cost nothing unless a recording has the {@code hu.dpc.fr.integritycheck.Stage}
+ * event enabled. If the {@value #GLOBAL_PROPERTY} system property is {@code true}, spans go to the global
+ * OpenTelemetry instance (e.g. the one set up by the OpenTelemetry java agent). It is looked up for every stage rather
+ * than kept, and never without the property, because looking it up before one is registered pins a no-op instance
+ * for the whole JVM. If the {@value #FILE_PROPERTY} system property is set, spans are written to that file instead,
+ * one JSON object per line. Otherwise spans are dropped. The W3C trace context of the login request is used as the parent
+ * and is propagated to the Google API call.
+ * </p>
+ */
+public final class IntegrityTracing {
+
+    static final String FILE_PROPERTY = "hu.dpc.fr.integritycheck.tracing.file";
+    static final String GLOBAL_PROPERTY = "hu.dpc.fr.integritycheck.tracing.global";
+
+    private static final Logger logger = LoggerFactory.getLogger(IntegrityTracing.class);
+    private static final AttributeKey<String> CHECK = AttributeKey.stringKey("integritycheck.check");
+    private static final AttributeKey<String> STAGE = AttributeKey.stringKey("integritycheck.stage");
+    private static final AttributeKey<String> APP = AttributeKey.stringKey("integritycheck.app");
+    private static final AttributeKey<Boolean> SUCCESS = AttributeKey.booleanKey("integritycheck.success");
+
+    private static final TextMapSetter<HttpHeaders> HTTP_HEADERS_SETTER = (headers, key, value) -> {
+        if (headers != null) {
+            headers.set(key, value);
+        }
+    };
+
+    private static final TextMapGetter<ListMultimap<String, String>> REQUEST_HEADERS_GETTER =
+            new TextMapGetter<ListMultimap<String, String>>() {
+                @Override
+                public Iterable<String> keys(ListMultimap<String, String> headers) {
+                    return headers == null ? Collections.emptyList() : headers.keySet();
+                }
+
+                @Override
+                public String get(ListMultimap<String, String> headers, String key) {
+                    if (headers == null) {
+                        return null;
+                    }
+                    for (String name : headers.keySet()) {
+                        if (name.equalsIgnoreCase(key) && !headers.get(name).isEmpty()) {
+                            return headers.get(name).get(0);
+                        }
+                    }
+                    return null;
+                }
+            };
+
+    private static final String INSTRUMENTATION_NAME = "hu.dpc.fr.integritycheck";
+
+    private static final SdkTracerProvider fileTracerProvider = createFileTracerProvider();
+    private static final OpenTelemetry fileOpenTelemetry = fileTracerProvider == null ? null
+            : OpenTelemetrySdk.builder()
+                    .setTracerProvider(fileTracerProvider)
+                    .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+                    .build();
+
+    private IntegrityTracing() {
+    }
+
+    /**
+     * Start the outermost stage of a check, as a child of the trace context of the login request.
+     *
+     * @param check          AppAttest or PlayIntegrity.
+     * @param stage          The name of the stage.
+     * @param app            The bundle id or package name.
+     * @param requestHeaders The headers of the login request.
+     * @return The stage, to be closed when it is over.
+     */
+    public static Stage start(String check, String stage, String app, ListMultimap<String, String> requestHeaders) {
+        Context parent = openTelemetry().getPropagators().getTextMapPropagator()
+                .extract(Context.current(), requestHeaders, REQUEST_HEADERS_GETTER);
+        return new Stage(check, stage, app, parent);
+    }
+
+    /**
+     * Start a stage as a child of the current stage.
+     *
+     * @param check AppAttest or PlayIntegrity.
+     * @param stage The name of the stage.
+     * @param app   The bundle id or package name.
+     * @return The stage, to be closed when it is over.
+     */
+    public static Stage start(String check, String stage, String app) {
+        return new Stage(check, stage, app, Context.current());
+    }
+
+    /**
+     * Make a task handed to another thread continue the trace of the current stage.
+     *
+     * @param task The task.
+     * @return The task, running with the trace context of the caller.
+     */
+    public static Runnable wrap(Runnable task) {
+        return Context.current().wrap(task);
+    }
+
+    /**
+     * Add the trace context of the current stage to an outbound request.
+     *
+     * @param headers The headers of the request.
+     */
+    public static void inject(HttpHeaders headers) {
+        openTelemetry().getPropagators().getTextMapPropagator().inject(Context.current(), headers, HTTP_HEADERS_SETTER);
+    }
+
+    /**
+     * Flush and close the span file, if there is one.
+     */
+    public static void shutdown() {
+        if (fileTracerProvider != null) {
+            fileTracerProvider.shutdown();
+        }
+    }
+
+    private static OpenTelemetry openTelemetry() {
+        if (fileOpenTelemetry != null) {
+            return fileOpenTelemetry;
+        }
+        return Boolean.getBoolean(GLOBAL_PROPERTY) ? GlobalOpenTelemetry.get() : OpenTelemetry.noop();
+    }
+
+    private static SdkTracerProvider createFileTracerProvider() {
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file == null) {
+            return null;
+        }
+        logger.info("INTEGRITYTRACING: writing spans to " + file);
+        return SdkTracerProvider.builder()
+                .setResource(Resource.getDefault().merge(Resource.create(
+                        Attributes.of(AttributeKey.stringKey("service.name"), "integrity-check-nodes"))))
+                .addSpanProcessor(BatchSpanProcessor.builder(new FileSpanExporter(Paths.get(file))).build())
+                .build();
+    }
+
+    /**
+     * A running stage, recorded as a JFR event and a span. It is not successful unless {@link #success()} is called
+     * before it is closed.
+     */
+    public static final class Stage implements AutoCloseable {
+
+        private final IntegrityCheckEvent event = new IntegrityCheckEvent();
+        private final Span span;
+        private final Scope scope;
+        private boolean success;
+
+        private Stage(String check, String stage, String app, Context parent) {
+            event.check = check;
+            event.stage = stage;
+            event.app = app;
+            event.begin();
+            span = openTelemetry().getTracer(INSTRUMENTATION_NAME).spanBuilder(check + "." + stage)
+                    .setParent(parent)
+                    .setAttribute(CHECK, check)
+                    .setAttribute(STAGE, stage)
+                    .setAttribute(APP, app)
+                    .startSpan();
+            scope = span.makeCurrent();
+        }
+
+        public void success() {
+            success = true;
+        }
+
+        public void success(boolean success) {
+            this.success = success;
+        }
+
+        @Override
+        public void close() {
+            event.success = success;
+            event.commit();
+            span.setAttribute(SUCCESS, success);
+            if (!success) {
+                span.setStatus(StatusCode.ERROR);
+            }
+            scope.close();
+            span.end();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import hu.dpc.fr.integritycheck.PlayIntegrityVerifier;
+import hu.dpc.fr.integritycheck.util.PlayCheckLevel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeferredVerificationServiceTest {
+
+    @TempDir
+    Path baseDir;
+
+    private final List<String> revokedSessions = new CopyOnWriteArrayList<>();
+    private DeferredVerificationService service;
+
+    @BeforeEach
+    void createService() {
+        System.setProperty(DeferredVerificationService.DIRECTORY_PROPERTY, baseDir.toString());
+        System.setProperty(DeferredVerificationService.MAX_ATTEMPTS_PROPERTY, "3");
+        System.setProperty(DeferredVerificationService.RETRY_DELAY_PROPERTY, "0");
+        service = new DeferredVerificationService(new SessionRevoker() {
+            @Override
+            public String reference(String sessionId) {
+                return "ref:" + sessionId;
+            }
+
+            @Override
+            public void revoke(String sessionReference) {
+                revokedSessions.add(sessionReference);
+            }
+        });
+    }
+
+    @AfterEach
+    void shutdown() {
+        service.shutdown();
+        System.clearProperty(DeferredVerificationService.DIRECTORY_PROPERTY);
+        System.clearProperty(DeferredVerificationService.MAX_ATTEMPTS_PROPERTY);
+        System.clearProperty(DeferredVerificationService.RETRY_DELAY_PROPERTY);
+    }
+
+    @Test
+    void passedVerificationIsRemoved() throws IOException {
+        FakeVerifier verifier = new FakeVerifier(PlayCheckLevel.NonceOnly, () -> true);
+
+        String id = service.submit(verifier, "token", "nonce").get();
+
+        await(() -> !Files.exists(pending(id)));
+        assertEquals(1, service.getMetrics().getPassed());
+        assertFalse(Files.exists(failed(id)));
+        assertTrue(revokedSessions.isEmpty());
+    }
+
+    @Test
+    void sessionBoundBeforeFailureIsRevoked() throws IOException {
+        CountDownLatch bound = new CountDownLatch(1);
+        FakeVerifier verifier = new FakeVerifier(PlayCheckLevel.NonceOnly, () -> {
+            await(() -> bound.getCount() == 0);
+            return false;
+        });
+
+        String id = service.submit(verifier, "token", "nonce").get();
+        service.bindSession(id, "session");
+        bound.countDown();
+
+        await(() -> revokedSessions.contains("ref:session"));
+        assertTrue(Files.exists(failed(id)));
+        assertFalse(Files.exists(pending(id)));
+    }
+
+    @Test
+    void sessionBoundAfterFailureIsRevoked() throws IOException {
+        FakeVerifier verifier = new FakeVerifier(PlayCheckLevel.NonceOnly, () -> false);
+
+        String id = service.submit(verifier, "token", "nonce").get();
+        await(() -> Files.exists(failed(id)));
+        service.bindSession(id, "session");
+
+        assertEquals(1, revokedSessions.size());
+        assertEquals("ref:session", revokedSessions.get(0));
+    }
+
+    @Test
+    void unreachableGoogleIsRetriedThenFails() throws IOException {
+        FakeVerifier verifier = new FakeVerifier(PlayCheckLevel.NonceOnly, () -> {
+            throw new IOException("unreachable");
+        });
+
+        String id = service.submit(verifier, "token", "nonce").get();
+
+        await(() -> Files.exists(failed(id)) && !Files.exists(pending(id)));
+        assertEquals(3, verifier.calls.get());
+        assertEquals(3, service.getMetrics().getErrors());
+    }
+
+    @Test
+    void serverErrorIsRetried() throws IOException {
+        AtomicInteger answers = new AtomicInteger();
+        FakeVerifier verifier = new FakeVerifier(PlayCheckLevel.NonceOnly, () -> {
+            if (answers.incrementAndGet() == 1) {
+                throw new HttpResponseException.Builder(503, "Service Unavailable", new HttpHeaders()).build();
+            }
+            return true;
+        });
+
+        String id = service.submit(verifier, "token", "nonce").get();
+
+        await(() -> !Files.exists(pending(id)));
+        assertEquals(2, verifier.calls.get());
+        assertEquals(1, service.getMetrics().getPassed());
+    }
+
+    @Test
+    void rejectedTokenFailsWithoutRetry() throws IOException {
+        FakeVerifier verifier = new FakeVerifier(PlayCheckLevel.NonceOnly, () -> {
+            throw new HttpResponseException.Builder(400, "Bad Request", new HttpHeaders()).build();
+        });
+
+        String id = service.submit(verifier, "token", "nonce").get();
+        service.bindSession(id, "session");
+
+        await(() -> revokedSessions.contains("ref:session"));
+        assertEquals(1, verifier.calls.get());
+        assertEquals(1, service.getMetrics().getFailed());
+        assertEquals(0, service.getMetrics().getErrors());
+    }
+
+    @Test
+    void recoveredVerificationIsResumedOnlyWithTheSameSettings() throws IOException {
+        FakeVerifier nonceOnly = new FakeVerifier(PlayCheckLevel.NonceOnly, () -> true);
+        FakeVerifier nonceDeviceApp = new FakeVerifier(PlayCheckLevel.NonceDeviceApp, () -> true);
+        new DeferredVerificationStore(baseDir).savePending(new DeferredVerification("1", "hu.dpc.sample",
+                nonceDeviceApp.getKey(), PlayCheckLevel.NonceDeviceApp, "token", "nonce", System.currentTimeMillis()));
+
+        service.register(nonceOnly);
+        service.register(nonceDeviceApp);
+
+        await(() -> !Files.exists(pending("1")));
+        assertEquals(0, nonceOnly.calls.get());
+        assertEquals(1, nonceDeviceApp.calls.get());
+        assertEquals(1, service.getMetrics().getPassed());
+    }
+
+    @Test
+    void unresumedRecoveredVerificationFailsAfterGracePeriod() throws IOException {
+        FakeVerifier nonceOnly = new FakeVerifier(PlayCheckLevel.NonceOnly, () -> true);
+        new DeferredVerificationStore(baseDir).savePending(new DeferredVerification("1", "hu.dpc.sample",
+                "settings-before-edit", PlayCheckLevel.NonceOnly, "token", "nonce", System.currentTimeMillis())
+                .withSessionReference("ref:session"));
+
+        service.register(nonceOnly);
+        service.expireRecovered();
+
+        assertEquals(0, nonceOnly.calls.get());
+        assertEquals(1, service.getMetrics().getExpired());
+        assertEquals(1, revokedSessions.size());
+        assertEquals("ref:session", revokedSessions.get(0));
+        assertTrue(Files.exists(failed("1")));
+        assertFalse(Files.exists(pending("1")));
+    }
+
+    private Path pending(String id) {
+        return baseDir.resolve("pending").resolve(id + ".properties");
+    }
+
+    private Path failed(String id) {
+        return baseDir.resolve("failed").resolve(id + ".properties");
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("condition not met in time");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("interrupted");
+            }
+        }
+    }
+
+    private interface Verdict {
+        boolean get() throws IOException;
+    }
+
+    private static final class FakeVerifier extends PlayIntegrityVerifier {
+
+        private final Verdict verdict;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private FakeVerifier(PlayCheckLevel checkLevel, Verdict verdict) {
+            super("hu.dpc.sample", "hu.dpc.sample", "{}", checkLevel);
+            this.verdict = verdict;
+        }
+
+        @Override
+        public boolean verify(String token, String nonce) throws IOException {
+            calls.incrementAndGet();
+            return verdict.get();
+        }
+    }
+}
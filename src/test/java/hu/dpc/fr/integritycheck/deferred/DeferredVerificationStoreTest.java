@@ -0,0 +1,133 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.deferred;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Properties;
+
+import hu.dpc.fr.integritycheck.util.PlayCheckLevel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeferredVerificationStoreTest {
+
+    @TempDir
+    Path baseDir;
+
+    private DeferredVerificationStore store;
+
+    @BeforeEach
+    void createStore() throws IOException {
+        store = new DeferredVerificationStore(baseDir);
+    }
+
+    @Test
+    void savedPendingVerificationIsReadBack() throws IOException {
+        DeferredVerification saved = verification("1").withSessionReference("ref:session").withAttempts(2);
+
+        store.savePending(saved);
+
+        DeferredVerification read = store.findPending("1").get();
+        assertEquals("1", read.getId());
+        assertEquals("hu.dpc.sample", read.getPackageName());
+        assertEquals("key", read.getAppKey());
+        assertEquals(PlayCheckLevel.NonceDeviceApp, read.getCheckLevel());
+        assertEquals("token", read.getToken());
+        assertEquals("nonce", read.getNonce());
+        assertEquals(1000L, read.getLoginTime());
+        assertEquals("ref:session", read.getSessionReference());
+        assertEquals(2, read.getAttempts());
+    }
+
+    @Test
+    void unboundVerificationHasNoSession() throws IOException {
+        store.savePending(verification("1"));
+
+        assertNull(store.findPending("1").get().getSessionReference());
+        assertFalse(store.findPending("2").isPresent());
+    }
+
+    @Test
+    void failedVerificationIsNoLongerPending() throws IOException {
+        store.savePending(verification("1"));
+
+        store.markFailed(verification("1").withSessionReference("ref:session"));
+
+        assertFalse(store.findPending("1").isPresent());
+        assertTrue(store.isFailed("1"));
+        assertTrue(store.loadPending().isEmpty());
+        Properties failed = new Properties();
+        try (InputStream in = Files.newInputStream(baseDir.resolve("failed").resolve("1.properties"))) {
+            failed.load(in);
+        }
+        assertFalse(failed.containsKey("sessionReference"));
+    }
+
+    @Test
+    void pendingVerificationsAreRecovered() throws IOException {
+        store.savePending(verification("1"));
+        store.savePending(verification("2"));
+        store.removePending("2");
+
+        List<DeferredVerification> pending = new DeferredVerificationStore(baseDir).loadPending();
+
+        assertEquals(1, pending.size());
+        assertEquals("1", pending.get(0).getId());
+    }
+
+    @Test
+    void onlyOldFailedVerificationsAreRemoved() throws IOException {
+        store.markFailed(verification("old"));
+        store.markFailed(verification("new"));
+        Files.setLastModifiedTime(baseDir.resolve("failed").resolve("old.properties"), FileTime.fromMillis(1000));
+
+        assertEquals(1, store.removeFailedBefore(2000));
+
+        assertFalse(store.isFailed("old"));
+        assertTrue(store.isFailed("new"));
+    }
+
+    @Test
+    void filesAreOnlyReadableByTheOwner() throws IOException {
+        assumeTrue(baseDir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+
+        store.savePending(verification("1"));
+
+        assertEquals("rwx------", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(baseDir.resolve("pending"))));
+        assertEquals("rw-------", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(baseDir.resolve("pending").resolve("1.properties"))));
+    }
+
+    private static DeferredVerification verification(String id) {
+        return new DeferredVerification(id, "hu.dpc.sample", "key", PlayCheckLevel.NonceDeviceApp, "token", "nonce",
+                1000L);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.registry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import hu.dpc.fr.integritycheck.PlayIntegrityVerifier;
+import hu.dpc.fr.integritycheck.util.AppAttestEnvironment;
+import hu.dpc.fr.integritycheck.util.PlayCheckLevel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IntegrityAppRegistryTest {
+
+    private static final String REGISTRY = "{"
+            + "\"appAttest\": {"
+            + "  \"hu.dpc.ios\": { \"teamId\": \"123456789A\", \"environment\": \"DEVELOPMENT\" },"
+            + "  \"hu.dpc.ios.default\": { \"teamId\": \"123456789B\" }"
+            + "},"
+            + "\"playIntegrity\": {"
+            + "  \"hu.dpc.android\": { \"appName\": \"Sample\", \"checkLevel\": \"NonceDeviceApp\","
+            + "                       \"googleCredentials\": { \"type\": \"service_account\" } },"
+            + "  \"hu.dpc.android.default\": { \"googleCredentials\": \"{}\" }"
+            + "}}";
+
+    @TempDir
+    Path dir;
+
+    private Path file;
+    private IntegrityAppRegistry registry;
+
+    @BeforeEach
+    void createRegistry() throws IOException {
+        file = dir.resolve("registry.json");
+        write(REGISTRY, 1000);
+        System.setProperty(IntegrityAppRegistry.FILE_PROPERTY, file.toString());
+        System.setProperty(IntegrityAppRegistry.RELOAD_INTERVAL_PROPERTY, "0");
+        registry = new IntegrityAppRegistry();
+    }
+
+    @AfterEach
+    void clearProperties() {
+        System.clearProperty(IntegrityAppRegistry.FILE_PROPERTY);
+        System.clearProperty(IntegrityAppRegistry.RELOAD_INTERVAL_PROPERTY);
+    }
+
+    @Test
+    void appsAreParsed() {
+        assertEquals(new AppAttestApp("123456789A", "hu.dpc.ios", AppAttestEnvironment.DEVELOPMENT),
+                registry.findAppAttestApp("hu.dpc.ios").get());
+        assertEquals(new PlayIntegrityApp("hu.dpc.android", "Sample", "{\"type\":\"service_account\"}",
+                PlayCheckLevel.NonceDeviceApp), registry.findPlayIntegrityApp("hu.dpc.android").get());
+    }
+
+    @Test
+    void missingSettingsHaveDefaults() {
+        assertEquals(new AppAttestApp("123456789B", "hu.dpc.ios.default", AppAttestEnvironment.PRODUCTION),
+                registry.findAppAttestApp("hu.dpc.ios.default").get());
+        assertEquals(new PlayIntegrityApp("hu.dpc.android.default", "hu.dpc.android.default", "{}",
+                PlayCheckLevel.NonceOnly), registry.findPlayIntegrityApp("hu.dpc.android.default").get());
+    }
+
+    @Test
+    void unknownAppsAreNotFound() {
+        assertFalse(registry.findAppAttestApp("hu.dpc.unknown").isPresent());
+        assertFalse(registry.findPlayIntegrityApp("hu.dpc.unknown").isPresent());
+    }
+
+    @Test
+    void noAppsWithoutRegistryFile() {
+        System.clearProperty(IntegrityAppRegistry.FILE_PROPERTY);
+
+        assertFalse(new IntegrityAppRegistry().findAppAttestApp("hu.dpc.ios").isPresent());
+    }
+
+    @Test
+    void changedFileIsReloaded() throws IOException {
+        registry.findAppAttestApp("hu.dpc.ios");
+
+        write(REGISTRY.replace("123456789A", "123456789C"), 2000);
+
+        assertEquals("123456789C", registry.findAppAttestApp("hu.dpc.ios").get().getTeamId());
+    }
+
+    @Test
+    void invalidFileKeepsPreviousRegistry() throws IOException {
+        registry.findAppAttestApp("hu.dpc.ios");
+
+        write("{ not json", 2000);
+
+        assertEquals("123456789A", registry.findAppAttestApp("hu.dpc.ios").get().getTeamId());
+    }
+
+    @Test
+    void verifiersAreSharedUntilTheirEntryChanges() throws IOException {
+        PlayIntegrityApp changed = registry.findPlayIntegrityApp("hu.dpc.android").get();
+        PlayIntegrityApp unchanged = registry.findPlayIntegrityApp("hu.dpc.android.default").get();
+        PlayIntegrityVerifier changedVerifier = registry.playIntegrityVerifier(changed);
+        PlayIntegrityVerifier unchangedVerifier = registry.playIntegrityVerifier(unchanged);
+        assertSame(changedVerifier, registry.playIntegrityVerifier(changed));
+
+        write(REGISTRY.replace("NonceDeviceApp", "NonceOnly"), 2000);
+        registry.findPlayIntegrityApp("hu.dpc.android");
+
+        assertNotSame(changedVerifier, registry.playIntegrityVerifier(changed));
+        assertSame(unchangedVerifier, registry.playIntegrityVerifier(unchanged));
+    }
+
+    private void write(String content, long lastModified) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+    }
+}
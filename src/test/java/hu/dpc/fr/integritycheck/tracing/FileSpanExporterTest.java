@@ -0,0 +1,71 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.tracing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileSpanExporterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void eachSpanIsWrittenAsOneJsonLine() throws IOException {
+        Path file = dir.resolve("spans.jsonl");
+        SdkTracerProvider provider = SdkTracerProvider.builder()
+                .addSpanProcessor(SimpleSpanProcessor.create(new FileSpanExporter(file)))
+                .build();
+        Tracer tracer = provider.get("test");
+
+        Span first = tracer.spanBuilder("PlayIntegrity.client").setAttribute("integritycheck.app", "hu.dpc.sample")
+                .startSpan();
+        first.end();
+        Span second = tracer.spanBuilder("PlayIntegrity.verdict").startSpan();
+        second.setStatus(StatusCode.ERROR);
+        second.end();
+        provider.shutdown().join(10, TimeUnit.SECONDS);
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        Map<?, ?> client = new ObjectMapper().readValue(lines.get(0), Map.class);
+        assertEquals("PlayIntegrity.client", client.get("name"));
+        assertEquals(first.getSpanContext().getTraceId(), client.get("traceId"));
+        assertEquals(first.getSpanContext().getSpanId(), client.get("spanId"));
+        assertEquals("UNSET", client.get("status"));
+        assertEquals("hu.dpc.sample", ((Map<?, ?>) client.get("attributes")).get("integritycheck.app"));
+        Map<?, ?> verdict = new ObjectMapper().readValue(lines.get(1), Map.class);
+        assertEquals("PlayIntegrity.verdict", verdict.get("name"));
+        assertEquals("ERROR", verdict.get("status"));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Portions Copyright 2023 DPC Consulting Kft
+ */
+
+package hu.dpc.fr.integritycheck.tracing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.http.HttpHeaders;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IntegrityTracingTest {
+
+    private static final String TRACE_ID = "0af7651916cd43dd8448eb211c80319c";
+    private static final String PARENT_SPAN_ID = "b7ad6b7169203331";
+
+    @TempDir
+    Path dir;
+
+    private Path file;
+    private SdkTracerProvider provider;
+
+    @BeforeEach
+    void registerGlobalOpenTelemetry() {
+        file = dir.resolve("spans.jsonl");
+        provider = SdkTracerProvider.builder()
+                .addSpanProcessor(SimpleSpanProcessor.create(new FileSpanExporter(file)))
+                .build();
+        GlobalOpenTelemetry.resetForTest();
+        GlobalOpenTelemetry.set(OpenTelemetrySdk.builder()
+                .setTracerProvider(provider)
+                .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+                .build());
+        System.setProperty(IntegrityTracing.GLOBAL_PROPERTY, "true");
+    }
+
+    @AfterEach
+    void resetGlobalOpenTelemetry() {
+        System.clearProperty(IntegrityTracing.GLOBAL_PROPERTY);
+        GlobalOpenTelemetry.resetForTest();
+        provider.shutdown().join(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void stageContinuesTheTraceOfTheLoginRequest() throws IOException {
+        try (IntegrityTracing.Stage stage = IntegrityTracing.start("PlayIntegrity", "validateIntegrityToken",
+                "hu.dpc.sample", loginRequestHeaders())) {
+            stage.success();
+        }
+
+        List<Map<?, ?>> spans = spans();
+        assertEquals(1, spans.size());
+        assertEquals("PlayIntegrity.validateIntegrityToken", spans.get(0).get("name"));
+        assertEquals(TRACE_ID, spans.get(0).get("traceId"));
+        assertEquals(PARENT_SPAN_ID, spans.get(0).get("parentSpanId"));
+        assertEquals("UNSET", spans.get(0).get("status"));
+    }
+
+    @Test
+    void childStagesAreNestedUnderTheRequestStage() throws IOException {
+        try (IntegrityTracing.Stage validation = IntegrityTracing.start("AppAttest", "validateAttestation",
+                "hu.dpc.sample", loginRequestHeaders())) {
+            try (IntegrityTracing.Stage decode = IntegrityTracing.start("AppAttest", "decode", "hu.dpc.sample")) {
+                decode.success();
+            }
+            try (IntegrityTracing.Stage validate = IntegrityTracing.start("AppAttest", "validate", "hu.dpc.sample")) {
+                validate.success(false);
+            }
+            validation.success(false);
+        }
+
+        List<Map<?, ?>> spans = spans();
+        assertEquals(3, spans.size());
+        Map<?, ?> decode = spans.get(0);
+        Map<?, ?> validate = spans.get(1);
+        Map<?, ?> validation = spans.get(2);
+        assertEquals("AppAttest.validateAttestation", validation.get("name"));
+        assertEquals(validation.get("spanId"), decode.get("parentSpanId"));
+        assertEquals(validation.get("spanId"), validate.get("parentSpanId"));
+        assertEquals(TRACE_ID, decode.get("traceId"));
+        assertEquals("ERROR", validate.get("status"));
+    }
+
+    @Test
+    void currentStageIsPropagatedToOutboundRequests() throws IOException {
+        HttpHeaders outbound = new HttpHeaders();
+        try (IntegrityTracing.Stage stage = IntegrityTracing.start("PlayIntegrity", "decodeIntegrityToken",
+                "hu.dpc.sample", loginRequestHeaders())) {
+            IntegrityTracing.inject(outbound);
+            stage.success();
+        }
+
+        String spanId = (String) spans().get(0).get("spanId");
+        assertEquals("00-" + TRACE_ID + "-" + spanId + "-01", outbound.getFirstHeaderStringValue("traceparent"));
+    }
+
+    @Test
+    void spansAreDroppedWithoutOptIn() {
+        System.clearProperty(IntegrityTracing.GLOBAL_PROPERTY);
+
+        HttpHeaders outbound = new HttpHeaders();
+        try (IntegrityTracing.Stage stage = IntegrityTracing.start("PlayIntegrity", "client", "hu.dpc.sample",
+                loginRequestHeaders())) {
+            IntegrityTracing.inject(outbound);
+            stage.success();
+        }
+
+        assertFalse(Files.exists(file));
+        assertNull(outbound.getFirstHeaderStringValue("traceparent"));
+    }
+
+    private static ListMultimap<String, String> loginRequestHeaders() {
+        ListMultimap<String, String> headers = ArrayListMultimap.create();
+        headers.put("Traceparent", "00-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01");
+        headers.put("Accept", "application/json");
+        return headers;
+    }
+
+    private List<Map<?, ?>> spans() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<Map<?, ?>> spans = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            spans.add(mapper.readValue(line, Map.class));
+        }
+        return spans;
+    }
+}